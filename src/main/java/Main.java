@@ -11,6 +11,7 @@ import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.Reader;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
@@ -27,6 +28,7 @@ import com.google.gson.GsonBuilder;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
 import com.google.gson.JsonParser;
 import edu.wpi.cscore.CvSource;
 import edu.wpi.cscore.MjpegServer;
@@ -69,8 +71,14 @@ import org.opencv.core.Point;
  */
 public final class Main {
   private static String configFile = "/boot/frc.json";
+  private static String pipelineConfigFile = "/boot/pipeline.json";
   private static final String desktopModeFlag = "-desktop";
   private static final String imageFolderFlag = "-images";
+  private static final String pipelineConfigFlag = "-params";
+  private static final String tuneModeFlag = "-tune";
+  private static final String soakModeFlag = "-soak";
+  private static final String minutesFlag = "-minutes";
+  private static final String soakCanaryFlag = "-canary";
   private static final String openCvLibEnVar = "OPENCV_LIBRARY";
 
   @SuppressWarnings("MemberName")
@@ -82,6 +90,58 @@ public final class Main {
     public JsonElement streamConfig;
   }
 
+  /**
+   * The tunable constants used by MyPipeline. These are kept separate from the pipeline so that
+   * they can be written out by the Tuner and loaded back from a JSON file, rather than being
+   * edited by hand for every venue.
+   */
+  public static class PipelineParameters {
+    public int hMin = 29; // 50
+    public int sMin = 90; // 140
+    public int vMin = 60; // 140
+
+    public int hMax = 100; // 95
+    public int sMax = 255; // 255
+    public int vMax = 255; // 255
+
+    // target angle bounds
+    public int tPosUp = 64; // negative upper bound
+    public int tPosLow = 43; // negative lower bound
+    public int tNegUp = -8; // positive upper bound
+    public int tNegLow = -81; // positive lower bound
+
+    public int contourAreaMin = 90;
+    public double ratioMin = 2.2;
+    public double ratioMax = 4;
+
+    /**
+     * Make a copy of these parameters.
+     */
+    public PipelineParameters copy() {
+      return fromJson(toJson());
+    }
+
+    /**
+     * Convert these parameters to a JSON object.
+     */
+    public JsonObject toJson() {
+      return new Gson().toJsonTree(this).getAsJsonObject();
+    }
+
+    /**
+     * Read parameters from a JSON object. Any parameter that is missing keeps its default value.
+     */
+    public static PipelineParameters fromJson(JsonObject obj) {
+      PipelineParameters params = new Gson().fromJson(obj, PipelineParameters.class);
+      return params == null ? new PipelineParameters() : params;
+    }
+
+    @Override
+    public String toString() {
+      return toJson().toString();
+    }
+  }
+
   public static int team;
   public static boolean server;
   public static List<CameraConfig> cameraConfigs = new ArrayList<>();
@@ -184,6 +244,40 @@ public final class Main {
     return true;
   }
 
+  /**
+   * Read pipeline parameters, such as those written by the Tuner. The defaults in
+   * PipelineParameters are used if the file does not exist or cannot be read.
+   */
+  public static PipelineParameters readPipelineConfig(String file) {
+    if (file == null || !Files.exists(Paths.get(file))) {
+      System.out.println("No pipeline parameters found, using defaults");
+      return new PipelineParameters();
+    }
+
+    // parse file
+    PipelineParameters params;
+    try (Reader reader = Files.newBufferedReader(Paths.get(file))) {
+      JsonElement top = new JsonParser().parse(reader);
+
+      // top level must be an object
+      if (!top.isJsonObject()) {
+        System.err.println("config error in '" + file + "': must be JSON object");
+        return new PipelineParameters();
+      }
+
+      params = PipelineParameters.fromJson(top.getAsJsonObject());
+    } catch (IOException ex) {
+      System.err.println("could not open '" + file + "': " + ex);
+      return new PipelineParameters();
+    } catch (JsonParseException | NumberFormatException ex) {
+      System.err.println("config error in '" + file + "': " + ex + ", using defaults");
+      return new PipelineParameters();
+    }
+
+    System.out.println("Loaded pipeline parameters from '" + file + "': " + params);
+    return params;
+  }
+
   /**
    * Start running the camera.
    */
@@ -233,24 +327,11 @@ public final class Main {
     public Mat out = new Mat();
     public int val = 0;
 
-    public int hMin = 29; // 50
-    public int sMin = 90; // 140
-    public int vMin = 60; // 140
-
-    public int hMax = 100; // 95
-    public int sMax = 255; // 255
-    public int vMax = 255; // 255
-
-    // target angle bounds
-    public int tPosUp = 64; // negative upper bound
-    public int tPosLow = 43; // negative lower bound
-    public int tNegUp = -8; // positive upper bound
-    public int tNegLow = -81; // positive lower bound
-
-    public int contourAreaMin = 90;
     public double robotHeading;
-    public double ratioMin = 2.2;
-    public double ratioMax = 4;
+    public PipelineParameters params = new PipelineParameters();
+
+    // shared by every frame, and only ever read
+    private static final Mat kernel = Mat.ones(5, 5, CvType.CV_8SC1);
 
     @Override
     public void process(Mat mat) {
@@ -267,11 +348,83 @@ public final class Main {
       timer.stop();
       // print("Converting from BGR to HSV", timer);
 
-      // Threshold based on Hue (color), Saturation, and Value
+      threshold(hsv, bin, params);
+
+      timer.start();
+      List<MatOfPoint> binContours = findContours(bin);
+      timer.stop();
+      // print("Finding contours", timer);
+
+      List<BetterRectangle> rectangles = findRectangles(binContours, params.contourAreaMin);
+      List<BetterRectangle> allRectanglesThatMayBePartOfATargetPair =
+          filterRectangles(rectangles, params);
+      List<Pair> targets = findPairs(allRectanglesThatMayBePartOfATargetPair);
+
+      List<MatOfPoint> filteredContours = new ArrayList<>();
+      for (Pair t : targets) {
+        // find center of the target
+        Imgproc.circle(mat, new Point(t.centerX(), t.centerY()), 3, new Scalar(0, 0, 255), -1);
+
+        filteredContours.add(t.left.matOfPoint);
+        filteredContours.add(t.right.matOfPoint);
+      }
+
+      double smallestAngle = Double.MAX_VALUE;
+      Pair target = selectTarget(targets);
+      if (target != null) {
+        double imageCenterx = (width / 2);
+
+        // negative means to the left of center
+        // diff angle
+        // ----- == ------
+        // width FOV / 2
+        double diff = target.centerX() - imageCenterx;
+        smallestAngle = (diff / width) * FOV / 2;
+        // System.out.println("Angle: " + smallestAngle);
+      }
+
+      if (!debugMode) {
+        if (smallestAngle != Double.MAX_VALUE) {
+          robotHeading = robotHeading + smallestAngle;
+          SmartDashboard.putBoolean("target_found", true);
+        } else {
+          SmartDashboard.putBoolean("target_found", false);
+        }
+        SmartDashboard.putNumber("target_angle", robotHeading);
+      }
+
+      Imgproc.drawContours(mat, filteredContours, -1, new Scalar(0, 0, 255), 2);
+      out = mat;
+
+      // free this frame's native memory now rather than waiting for the garbage collector, which
+      // can't see how much of it there is and lets it pile up over an event
+      for (MatOfPoint contour : binContours) {
+        contour.release();
+      }
+      for (BetterRectangle betRect : rectangles) {
+        betRect.matOfPoint.release();
+      }
+      for (Pair t : targets) {
+        // the other half may have been inferred rather than found
+        for (BetterRectangle half : new BetterRectangle[] {t.left, t.right}) {
+          if (!rectangles.contains(half)) {
+            half.matOfPoint.release();
+          }
+        }
+      }
+    }
+
+    /**
+     * Threshold an HSV image into a binary image based on Hue (color), Saturation, and Value.
+     */
+    public static void threshold(Mat hsv, Mat bin, PipelineParameters params) {
+      Timer timer = new Timer();
+
       // color is the most important identifier, but we also want pixels
       // that are the brightest
       timer.start();
-      Core.inRange(hsv, new Scalar(hMin, sMin, vMin), new Scalar(hMax, sMax, vMax), bin);
+      Core.inRange(hsv, new Scalar(params.hMin, params.sMin, params.vMin),
+          new Scalar(params.hMax, params.sMax, params.vMax), bin);
       timer.stop();
       // print("Thresholding HSV", timer);
 
@@ -281,24 +434,31 @@ public final class Main {
       // https://docs.opencv.org/3.4/d9/d61/tutorial_py_morphological_ops.html
       // You can change the parameters of kernal to 'tune' its effects
       // timer.start();
-      Mat kernel = Mat.ones(5, 5, CvType.CV_8SC1);
       Imgproc.morphologyEx(bin, bin, Imgproc.MORPH_CLOSE, kernel);
       timer.stop();
       // print("Morph opening", timer);
+    }
 
-      timer.start();
+    /**
+     * Find the outlines of every blob in a binary image.
+     */
+    public static List<MatOfPoint> findContours(Mat bin) {
       List<MatOfPoint> binContours = new ArrayList<>();
-      Imgproc.findContours(bin, binContours, new Mat(), Imgproc.RETR_LIST,
+      Mat hierarchy = new Mat();
+      Imgproc.findContours(bin, binContours, hierarchy, Imgproc.RETR_LIST,
           Imgproc.CHAIN_APPROX_SIMPLE);
-      timer.stop();
-      // print("Finding contours", timer);
+      hierarchy.release();
+      return binContours;
+    }
 
-      List<MatOfPoint> filteredContours = new ArrayList<>();
-      List<BetterRectangle> allRectanglesThatMayBePartOfATargetPair = new ArrayList<>();
-      List<Pair> targets = new ArrayList<>();
+    /**
+     * Get the "Rotated Rectangle" representation of every contour that is not too small.
+     */
+    static List<BetterRectangle> findRectangles(List<MatOfPoint> binContours,
+        double contourAreaMin) {
+      Timer timer = new Timer();
+      List<BetterRectangle> rectangles = new ArrayList<>();
 
-      // Loop through each contour, removing contours that don't match our
-      // "description" of a target
       for (int i = 0; i < binContours.size(); i++) {
         MatOfPoint contour = binContours.get(i); // current contour
 
@@ -310,36 +470,66 @@ public final class Main {
           continue;
         }
 
-        // Get the "Rotated Rectangle" representation of our contour
         timer.start();
-        RotatedRect rectangle = Imgproc.minAreaRect(new MatOfPoint2f(contour.toArray()));
+        MatOfPoint2f contour2f = new MatOfPoint2f(contour.toArray());
+        RotatedRect rectangle = Imgproc.minAreaRect(contour2f);
+        contour2f.release();
         timer.stop();
         // print("Min area rect", timer);
 
+        // convert contour into a MatOfPoint again, so it's easier to work with
+        BetterRectangle betRect = new BetterRectangle(rectangle);
+        betRect.contourArea = contourArea;
+        rectangles.add(betRect);
+      }
+
+      return rectangles;
+    }
+
+    /**
+     * Remove rectangles that don't match our "description" of half of a target.
+     */
+    static List<BetterRectangle> filterRectangles(List<BetterRectangle> rectangles,
+        PipelineParameters params) {
+      List<BetterRectangle> filtered = new ArrayList<>();
+
+      for (BetterRectangle betRect : rectangles) {
+        // filter out contours that are too small
+        if (betRect.contourArea < params.contourAreaMin) {
+          continue;
+        }
+
         // filter out rectangles that are at the incorrect tilt
         // not sure what reference frame this is using, but are
         // experimentally produced numbers
-        if ((rectangle.angle < tNegLow || rectangle.angle > tNegUp)
-            && (rectangle.angle < tPosLow || rectangle.angle > tPosUp)) {
+        double angle = betRect.angle;
+        if ((angle < params.tNegLow || angle > params.tNegUp)
+            && (angle < params.tPosLow || angle > params.tPosUp)) {
           // System.out.println("Removing contour for angle");
           continue;
         }
 
-        // convert contour into a MatOfPoint again, so it's easier to work with
-        BetterRectangle betRect = new BetterRectangle(rectangle);
-
         // sampled height / width: = 2.777, 2.91, 2.57, 2.55, 3.77
 
         double ratio = betRect.height / betRect.width;
         // System.out.println("Ratio: " + ratio);
-        if (ratio > ratioMax || ratio < ratioMin) {
+        if (ratio > params.ratioMax || ratio < params.ratioMin) {
           // System.out.println("Removing contour for ratio");
           continue;
         }
 
-        allRectanglesThatMayBePartOfATargetPair.add(betRect);
+        filtered.add(betRect);
       }
 
+      return filtered;
+    }
+
+    /**
+     * Pair up half targets into whole targets, inferring the other half when only one is seen.
+     */
+    static List<Pair> findPairs(List<BetterRectangle> allRectanglesThatMayBePartOfATargetPair) {
+      List<Pair> targets = new ArrayList<>();
+
       // infer where the center of the target is
       if (allRectanglesThatMayBePartOfATargetPair.size() == 1) {
         BetterRectangle loneWolf = allRectanglesThatMayBePartOfATargetPair.get(0);
@@ -438,48 +628,22 @@ public final class Main {
         }
       }
 
-      double smallestAngle = Double.MAX_VALUE;
-      for (Pair t : targets) {
-        // find center of the target
-        double leftx = t.left.rotatedRectangle.center.x;
-        double lefty = t.left.rotatedRectangle.center.y;
-        double rightx = t.right.rotatedRectangle.center.x;
-        double righty = t.right.rotatedRectangle.center.y;
-        double centerx = (leftx + rightx) / 2.0;
-        double centery = (lefty + righty) / 2.0;
-        Imgproc.circle(mat, new Point(centerx, centery), 3, new Scalar(0, 0, 255), -1);
-
-        double imageCenterx = (width / 2);
-
-
-        // negative means to the left of center
-        // diff angle
-        // ----- == ------
-        // width FOV / 2
-        double diff = centerx - imageCenterx;
-        double angleDiff = (diff / width) * FOV / 2;
-        // System.out.println("Angle: " + angleDiff);
-
-        if (angleDiff < smallestAngle) {
-          smallestAngle = angleDiff;
-        }
-
-        filteredContours.add(t.left.matOfPoint);
-        filteredContours.add(t.right.matOfPoint);
-      }
+      return targets;
+    }
 
-      if (!debugMode) {
-        if (smallestAngle != Double.MAX_VALUE) {
-          robotHeading = robotHeading + smallestAngle;
-          SmartDashboard.putBoolean("target_found", true);
-        } else {
-          SmartDashboard.putBoolean("target_found", false);
+    /**
+     * Pick the target to turn towards. This is the leftmost target, the one with the smallest
+     * center x, so its angle is the most negative (furthest left) rather than the closest to the
+     * center of the image.
+     */
+    static Pair selectTarget(List<Pair> targets) {
+      Pair best = null;
+      for (Pair t : targets) {
+        if (best == null || t.centerX() < best.centerX()) {
+          best = t;
         }
-        SmartDashboard.putNumber("target_angle", robotHeading);
       }
-
-      Imgproc.drawContours(mat, filteredContours, -1, new Scalar(0, 0, 255), 2);
-      out = mat;
+      return best;
     }
   }
 
@@ -490,7 +654,12 @@ public final class Main {
    */
   public static void main(String... args) {
     boolean desktopMode = false;
+    boolean tuneMode = false;
+    boolean soakMode = false;
+    boolean soakCanary = false;
+    double minutes = Double.NaN;
     String imageFolderPath = null;
+    String desktopPipelineConfigFile = null;
 
     for (int i = 0; i < args.length; i++) {
       String arg = args[i];
@@ -500,6 +669,25 @@ public final class Main {
         debugMode = true;
       } else if (arg.equals(Main.imageFolderFlag) && i + 1 < args.length) {
         imageFolderPath = args[i + 1];
+      } else if (arg.equals(Main.pipelineConfigFlag) && i + 1 < args.length) {
+        desktopPipelineConfigFile = args[i + 1];
+      } else if (arg.equals(Main.tuneModeFlag)) {
+        tuneMode = true;
+      } else if (arg.equals(Main.soakModeFlag)) {
+        soakMode = true;
+      } else if (arg.equals(Main.minutesFlag) && i + 1 < args.length) {
+        try {
+          minutes = Double.parseDouble(args[i + 1]);
+        } catch (NumberFormatException ex) {
+          minutes = Double.NaN;
+        }
+        if (!(minutes > 0)) {
+          System.err.println("could not understand " + minutesFlag + " value '" + args[i + 1]
+              + "', it must be a positive number of minutes");
+          System.exit(1);
+        }
+      } else if (arg.equals(Main.soakCanaryFlag)) {
+        soakCanary = true;
       }
     }
 
@@ -513,10 +701,37 @@ public final class Main {
       }
       System.load(libraryPath);
 
+      if (tuneMode) {
+        if (desktopPipelineConfigFile == null) {
+          desktopPipelineConfigFile = Tuner.defaultOutputFile;
+        }
+        if (Double.isNaN(minutes)) {
+          minutes = Tuner.defaultMinutes;
+        }
+        if (!Tuner.run(imageFolderPath, desktopPipelineConfigFile, minutes)) {
+          System.exit(1);
+        }
+        return;
+      }
+
+      if (soakMode) {
+        if (Double.isNaN(minutes)) {
+          minutes = SoakTest.defaultMinutes;
+        }
+        PipelineParameters params = readPipelineConfig(desktopPipelineConfigFile);
+        boolean passed = soakCanary ? SoakTest.runCanary(imageFolderPath, params)
+            : SoakTest.run(imageFolderPath, minutes, params);
+        if (!passed) {
+          System.exit(1);
+        }
+        return;
+      }
+
       Mat image = Imgcodecs.imread(imageFolderPath);
       showImage(image, "Input");
 
       MyPipeline pipeline = new MyPipeline();
+      pipeline.params = readPipelineConfig(desktopPipelineConfigFile);
       pipeline.process(image);
       showImage(pipeline.out, "Output");
 
@@ -556,7 +771,9 @@ public final class Main {
 
     // start image processing on camera 0 if present
     if (cameras.size() >= 1) {
-      VisionThread visionThread = new VisionThread(cameras.get(0), new MyPipeline(), pipeline -> {
+      MyPipeline myPipeline = new MyPipeline();
+      myPipeline.params = readPipelineConfig(pipelineConfigFile);
+      VisionThread visionThread = new VisionThread(cameras.get(0), myPipeline, pipeline -> {
 
         // give our output MJPEG server our processed image
         output.putFrame(pipeline.out);
@@ -638,13 +855,14 @@ public final class Main {
     }
   }
 
-  private static class BetterRectangle {
+  static class BetterRectangle {
     public RotatedRect rotatedRectangle;
     public MatOfPoint matOfPoint;
     public double width;
     public double height;
     public double area;
     public double angle;
+    public double contourArea;
 
     public BetterRectangle(RotatedRect rectangle) {
       rotatedRectangle = rectangle;
@@ -672,7 +890,7 @@ public final class Main {
     }
   }
 
-  private static class Pair {
+  static class Pair {
     public BetterRectangle left = null;
     public BetterRectangle right = null;
 
@@ -680,6 +898,14 @@ public final class Main {
       left = l;
       right = r;
     }
+
+    public double centerX() {
+      return (left.rotatedRectangle.center.x + right.rotatedRectangle.center.x) / 2.0;
+    }
+
+    public double centerY() {
+      return (left.rotatedRectangle.center.y + right.rotatedRectangle.center.y) / 2.0;
+    }
   }
 
 }
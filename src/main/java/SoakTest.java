@@ -0,0 +1,503 @@
+
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) 2018 FIRST. All Rights Reserved. */
+/* Open Source Software - may be modified and shared by FRC teams. The code */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project. */
+/*----------------------------------------------------------------------------*/
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.management.JMException;
+import javax.management.NotificationEmitter;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import com.sun.management.GarbageCollectionNotificationInfo;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Point;
+import org.opencv.core.RotatedRect;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Drives MyPipeline as fast as it will go for a long time, to catch the vision process slowing down
+ * over the length of an event. Frames are replayed from images on disk, or drawn synthetically if
+ * none are given. Every few seconds the FPS, latency percentiles, Java heap, native memory and GC
+ * time are printed, and at the end the run fails if any of them drifted too far from where they
+ * were once the JVM warmed up. Nothing is displayed, so this can run on a headless machine.
+ */
+public final class SoakTest {
+  public static final double defaultMinutes = 60;
+
+  private static final int width = 432;
+  private static final int height = 240;
+  private static final int syntheticFrames = 30;
+
+  private static final long sampleInterval = 10_000_000_000L; // ns
+  private static final int warmupSamples = 3;
+  private static final int compareSamples = 3;
+  private static final int residentInterval = 64; // frames between reads of resident memory
+  private static final long canaryLeakInterval = 50_000_000L; // ns between frames it keeps
+
+  // enough for the warm-up, both comparison windows and one to spare at the end
+  public static final double minimumMinutes =
+      (warmupSamples + 2 * compareSamples + 1) * sampleInterval / 60e9;
+
+  // how far things may drift between the start and the end of the run
+  private static final double maxFpsDrop = 0.2;
+  private static final double maxLatencyGrowth = 1.5;
+  private static final double maxGcGrowth = 2;
+  private static final long gcSlack = 20; // ms, so a few ms of noise on an idle GC isn't drift
+  private static final long maxHeapGrowth = 32L << 20;
+  private static final long maxNativeGrowth = 64L << 20;
+
+  private static class Sample {
+    public double seconds;
+    public double fps;
+    public double p50; // ms
+    public double p95; // ms
+    public double p99; // ms
+    public long heap; // smallest heap used, which is roughly what is still live
+    // resident memory the JVM didn't allocate, which may be negative. Like heap this is the
+    // smallest seen during the sample, since Mats waiting on their finalizers come and go on top.
+    public long nativeMemory;
+    public long nativePeak; // the most native memory got to during the sample
+    public long gcTime; // ms
+    public long longestGc; // ms
+  }
+
+  private static class Run {
+    public boolean nativeKnown; // false if resident memory can't be read, so native is meaningless
+    public List<Sample> samples = new ArrayList<>();
+  }
+
+  private static final AtomicLong longestGc = new AtomicLong();
+
+  private SoakTest() {
+  }
+
+  /**
+   * Run the pipeline for the given number of minutes. Returns false if it slowed down or leaked.
+   */
+  public static boolean run(String imagePath, double minutes, Main.PipelineParameters params) {
+    if (minutes < minimumMinutes) {
+      System.err.printf("the soak test needs at least %.1f minutes to look for drift%n",
+          minimumMinutes);
+      return false;
+    }
+
+    List<Mat> frames = imagePath == null ? drawFrames() : loadFrames(imagePath);
+    if (frames.isEmpty()) {
+      System.err.println("no images found in '" + imagePath + "'");
+      return false;
+    }
+    System.out.println("Soaking for " + minutes + " minutes on " + frames.size() + " "
+        + (imagePath == null ? "synthetic frames" : "images"));
+
+    watchGc();
+
+    Main.MyPipeline pipeline = new Main.MyPipeline();
+    pipeline.params = params;
+
+    boolean passed = check(soak(pipeline, frames, (long) (minutes * 60e9), false));
+
+    for (Mat f : frames) {
+      f.release();
+    }
+
+    System.out.println(passed ? "Soak test passed" : "Soak test failed");
+    return passed;
+  }
+
+  /**
+   * Run the pipeline for the shortest soak while keeping a copy of a frame every
+   * canaryLeakInterval, to prove that the native memory check can see a leak on this machine. This
+   * has to start in a fresh JVM, so that the leak isn't hidden in memory that an earlier run
+   * already freed. Returns true only if the leak was caught.
+   */
+  public static boolean runCanary(String imagePath, Main.PipelineParameters params) {
+    List<Mat> frames = imagePath == null ? drawFrames() : loadFrames(imagePath);
+    if (frames.isEmpty()) {
+      System.err.println("no images found in '" + imagePath + "'");
+      return false;
+    }
+    System.out.printf("Running the leak canary for %.1f minutes%n", minimumMinutes);
+
+    watchGc();
+
+    Main.MyPipeline pipeline = new Main.MyPipeline();
+    pipeline.params = params;
+    Run canary = soak(pipeline, frames, (long) (minimumMinutes * 60e9), true);
+
+    for (Mat f : frames) {
+      f.release();
+    }
+
+    List<Sample> samples = canary.samples;
+    if (!canary.nativeKnown || samples.size() < warmupSamples + 2 * compareSamples) {
+      System.out.println("FAIL: could not look for the canary leak");
+      return false;
+    }
+    double growth = nativeGrowth(firstWindow(samples), lastWindow(samples));
+    if (growth <= maxNativeGrowth) {
+      System.out.println("FAIL: the canary leak was not caught, native memory only grew "
+          + mb(growth) + " MB, so the native memory check can't be trusted on this machine");
+      return false;
+    }
+    System.out.println("The canary leak was caught, native memory grew " + mb(growth) + " MB");
+    return true;
+  }
+
+  /**
+   * Run the pipeline as fast as it will go for a while, taking a sample every sampleInterval. If
+   * leak is set, a copy of a frame is also kept every canaryLeakInterval until the end.
+   */
+  private static Run soak(Main.MyPipeline pipeline, List<Mat> frames, long duration,
+      boolean leak) {
+    Run run = new Run();
+    Mat frame = new Mat();
+
+    long[] latencies = new long[1024];
+    int count = 0;
+    long minHeap = Long.MAX_VALUE;
+    long lastGcTime = gcTime();
+    long jvmMemory = jvmMemory();
+    long minNative = Long.MAX_VALUE;
+    long nativePeak = Long.MIN_VALUE;
+    List<Mat> leaked = new ArrayList<>();
+
+    run.nativeKnown = residentMemory() >= 0;
+    if (!run.nativeKnown) {
+      System.out.println("Could not read resident memory, native memory is unknown");
+    }
+
+    long start = System.nanoTime();
+    long end = start + duration;
+    long windowStart = start;
+    long nextLeak = start;
+    for (int i = 0; System.nanoTime() < end; i++) {
+      frames.get(i % frames.size()).copyTo(frame);
+
+      long before = System.nanoTime();
+      pipeline.process(frame);
+      long now = System.nanoTime();
+
+      if (count == latencies.length) {
+        latencies = Arrays.copyOf(latencies, count * 2);
+      }
+      latencies[count++] = now - before;
+
+      if (leak && now - nextLeak >= 0) {
+        leaked.add(frame.clone());
+        nextLeak += canaryLeakInterval;
+      }
+
+      Runtime runtime = Runtime.getRuntime();
+      minHeap = Math.min(minHeap, runtime.totalMemory() - runtime.freeMemory());
+
+      // Mats that are only freed by their finalizers show up as spikes between collections
+      // rather than as steady growth, so keep the lowest and the highest point
+      if (run.nativeKnown && i % residentInterval == 0) {
+        long nativeMemory = residentMemory() - jvmMemory;
+        minNative = Math.min(minNative, nativeMemory);
+        nativePeak = Math.max(nativePeak, nativeMemory);
+      }
+
+      if (now - windowStart >= sampleInterval) {
+        Arrays.sort(latencies, 0, count);
+
+        Sample sample = new Sample();
+        sample.seconds = (now - start) / 1e9;
+        sample.fps = count / ((now - windowStart) / 1e9);
+        sample.p50 = percentile(latencies, count, 0.50);
+        sample.p95 = percentile(latencies, count, 0.95);
+        sample.p99 = percentile(latencies, count, 0.99);
+        sample.heap = minHeap;
+        jvmMemory = jvmMemory();
+        long nativeMemory = residentMemory() - jvmMemory;
+        sample.nativeMemory = Math.min(minNative, nativeMemory);
+        sample.nativePeak = Math.max(nativePeak, nativeMemory);
+        long gcTime = gcTime();
+        sample.gcTime = gcTime - lastGcTime;
+        sample.longestGc = longestGc.getAndSet(0);
+        run.samples.add(sample);
+        print(run, sample);
+
+        count = 0;
+        minHeap = Long.MAX_VALUE;
+        minNative = Long.MAX_VALUE;
+        nativePeak = Long.MIN_VALUE;
+        lastGcTime = gcTime;
+        windowStart = System.nanoTime();
+      }
+    }
+
+    frame.release();
+    for (Mat m : leaked) {
+      m.release();
+    }
+    return run;
+  }
+
+  /**
+   * Compare the end of the run to the start, once the JVM has warmed up.
+   */
+  private static boolean check(Run run) {
+    List<Sample> samples = run.samples;
+    if (samples.size() < warmupSamples + 2 * compareSamples) {
+      System.out.println("FAIL: run was too short to look for drift");
+      return false;
+    }
+    List<Sample> first = firstWindow(samples);
+    List<Sample> last = lastWindow(samples);
+
+    boolean passed = true;
+
+    double fps = median(first, s -> s.fps);
+    double endFps = median(last, s -> s.fps);
+    if (endFps < fps * (1 - maxFpsDrop)) {
+      System.out.printf("FAIL: FPS dropped from %.1f to %.1f%n", fps, endFps);
+      passed = false;
+    }
+
+    double p99 = median(first, s -> s.p99);
+    double endP99 = median(last, s -> s.p99);
+    if (endP99 > p99 * maxLatencyGrowth) {
+      System.out.printf("FAIL: p99 latency grew from %.2f ms to %.2f ms%n", p99, endP99);
+      passed = false;
+    }
+
+    double gcTime = median(first, s -> s.gcTime);
+    double endGcTime = median(last, s -> s.gcTime);
+    if (endGcTime > gcTime * maxGcGrowth + gcSlack) {
+      System.out.printf("FAIL: GC time per sample grew from %.0f ms to %.0f ms%n", gcTime,
+          endGcTime);
+      passed = false;
+    }
+
+    double longestGc = median(first, s -> s.longestGc);
+    double endLongestGc = median(last, s -> s.longestGc);
+    if (endLongestGc > longestGc * maxGcGrowth + gcSlack) {
+      System.out.printf("FAIL: longest GC grew from %.0f ms to %.0f ms%n", longestGc,
+          endLongestGc);
+      passed = false;
+    }
+
+    double heap = median(first, s -> s.heap);
+    double endHeap = median(last, s -> s.heap);
+    if (endHeap - heap > maxHeapGrowth) {
+      System.out.printf("FAIL: heap grew from %d MB to %d MB%n", mb(heap), mb(endHeap));
+      passed = false;
+    }
+
+    if (!run.nativeKnown) {
+      System.out.println("FAIL: could not read resident memory to look for native leaks");
+      return false;
+    }
+
+    double nativeMemory = median(first, s -> s.nativeMemory);
+    double endNativeMemory = median(last, s -> s.nativeMemory);
+    if (nativeGrowth(first, last) > maxNativeGrowth) {
+      System.out.printf("FAIL: native memory grew from %d MB to %d MB%n", mb(nativeMemory),
+          mb(endNativeMemory));
+      passed = false;
+    }
+
+    return passed;
+  }
+
+  /**
+   * The samples just after the warm-up, which the end of the run is compared to.
+   */
+  private static List<Sample> firstWindow(List<Sample> samples) {
+    return samples.subList(warmupSamples, warmupSamples + compareSamples);
+  }
+
+  private static List<Sample> lastWindow(List<Sample> samples) {
+    return samples.subList(samples.size() - compareSamples, samples.size());
+  }
+
+  /**
+   * How much native memory grew from one window of samples to another. Native memory is an
+   * estimate and may be negative, but the difference is still meaningful.
+   */
+  private static double nativeGrowth(List<Sample> first, List<Sample> last) {
+    return median(last, s -> s.nativeMemory) - median(first, s -> s.nativeMemory);
+  }
+
+  /**
+   * Load every image in a folder, or a single image.
+   */
+  private static List<Mat> loadFrames(String imagePath) {
+    List<Mat> frames = new ArrayList<>();
+    File path = new File(imagePath);
+    File[] files = path.isDirectory() ? path.listFiles() : new File[] {path};
+    if (files == null) {
+      return frames;
+    }
+
+    Arrays.sort(files);
+    for (File file : files) {
+      String name = file.getName().toLowerCase();
+      if (!name.endsWith(".jpg") && !name.endsWith(".png")) {
+        continue;
+      }
+      Mat image = Imgcodecs.imread(file.getPath());
+      if (image.empty()) {
+        System.err.println("could not read image '" + file + "', skipping");
+        continue;
+      }
+      frames.add(image);
+    }
+    return frames;
+  }
+
+  /**
+   * Draw frames with a target somewhere in each of them, on a noisy background.
+   */
+  private static List<Mat> drawFrames() {
+    Random random = new Random(2641);
+    List<Mat> frames = new ArrayList<>();
+
+    for (int i = 0; i < syntheticFrames; i++) {
+      Mat frame = new Mat(height, width, CvType.CV_8UC1);
+      Core.randn(frame, 40, 10);
+      Imgproc.cvtColor(frame, frame, Imgproc.COLOR_GRAY2BGR);
+
+      // each strip is about 5.5 by 2 in. and tilted ~14.5 degrees in towards the other, with
+      // their centers about 5 strip widths apart
+      double scale = 0.7 + random.nextDouble() * 0.8;
+      double stripWidth = 12 * scale;
+      double centerx = 80 + random.nextDouble() * (width - 160);
+      double centery = 60 + random.nextDouble() * (height - 120);
+      drawStrip(frame, centerx - 2.5 * stripWidth, centery, stripWidth, -14.5);
+      drawStrip(frame, centerx + 2.5 * stripWidth, centery, stripWidth, 14.5);
+
+      frames.add(frame);
+    }
+    return frames;
+  }
+
+  private static void drawStrip(Mat frame, double x, double y, double stripWidth, double angle) {
+    RotatedRect strip = new RotatedRect(new Point(x, y),
+        new Size(stripWidth, stripWidth * 2.75), angle);
+    Point[] vertices = new Point[4];
+    strip.points(vertices);
+
+    MatOfPoint polygon = new MatOfPoint(vertices);
+    Imgproc.fillConvexPoly(frame, polygon, new Scalar(80, 255, 80));
+    polygon.release();
+  }
+
+  /**
+   * Keep track of the longest garbage collection in each sample.
+   */
+  private static void watchGc() {
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      if (!(gc instanceof NotificationEmitter)) {
+        continue;
+      }
+      ((NotificationEmitter) gc).addNotificationListener((notification, handback) -> {
+        if (!notification.getType()
+            .equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+          return;
+        }
+        GarbageCollectionNotificationInfo info =
+            GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+        longestGc.accumulateAndGet(info.getGcInfo().getDuration(), Math::max);
+      }, null, null);
+    }
+  }
+
+  private static long gcTime() {
+    long total = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      total += Math.max(0, gc.getCollectionTime());
+    }
+    return total;
+  }
+
+  /**
+   * How much memory the process is using, including OpenCV's Mats. Returns -1 if this isn't Linux.
+   */
+  private static long residentMemory() {
+    try {
+      for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+        if (line.startsWith("VmRSS:")) {
+          return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+        }
+      }
+    } catch (IOException | NumberFormatException ex) {
+      return -1;
+    }
+    return -1;
+  }
+
+  /**
+   * How much memory the JVM itself has committed: the heap, but also code, metaspace and thread
+   * stacks. This needs -XX:NativeMemoryTracking=summary, otherwise only the heap is counted.
+   */
+  private static long jvmMemory() {
+    try {
+      Object summary = ManagementFactory.getPlatformMBeanServer().invoke(
+          new ObjectName("com.sun.management:type=DiagnosticCommand"), "vmNativeMemory",
+          new Object[] {new String[] {"summary"}}, new String[] {String[].class.getName()});
+      Matcher total = Pattern.compile("Total: reserved=\\d+KB, committed=(\\d+)KB")
+          .matcher(String.valueOf(summary));
+      if (total.find()) {
+        return Long.parseLong(total.group(1)) * 1024;
+      }
+    } catch (JMException ex) {
+      // fall through to the heap
+    }
+    return Runtime.getRuntime().totalMemory();
+  }
+
+  private static double percentile(long[] sorted, int count, double fraction) {
+    int index = Math.min(count - 1, (int) Math.ceil(fraction * count) - 1);
+    return sorted[Math.max(0, index)] / 1e6;
+  }
+
+  private interface Metric {
+    double get(Sample s);
+  }
+
+  private static double median(List<Sample> samples, Metric metric) {
+    double[] values = new double[samples.size()];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = metric.get(samples.get(i));
+    }
+    Arrays.sort(values);
+    return values[values.length / 2];
+  }
+
+  private static long mb(double bytes) {
+    return (long) (bytes / (1 << 20));
+  }
+
+  private static void print(Run run, Sample s) {
+    String nativeMemory = run.nativeKnown
+        ? String.format("%4d MB (peak %d MB)", mb(s.nativeMemory), mb(s.nativePeak))
+        : "unknown";
+    System.out.printf(
+        "%6.0f s %7.1f fps  p50 %6.2f ms  p95 %6.2f ms  p99 %6.2f ms  heap %4d MB  native %s"
+            + "  gc %4d ms (longest %d ms)%n",
+        s.seconds, s.fps, s.p50, s.p95, s.p99, mb(s.heap), nativeMemory, s.gcTime, s.longestGc);
+  }
+}
@@ -0,0 +1,468 @@
+
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) 2018 FIRST. All Rights Reserved. */
+/* Open Source Software - may be modified and shared by FRC teams. The code */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project. */
+/*----------------------------------------------------------------------------*/
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToDoubleFunction;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+/*
+ * Label format (labels.json, in the image folder): { <image file name>: <x pixel of the center of
+ * the target, or null if there is no target>, ... }
+ */
+
+/**
+ * Searches for the PipelineParameters that best find the targets in a folder of labeled images, so
+ * that the thresholds can be re-tuned for each venue's lighting instead of by hand. The images are
+ * loaded and converted to HSV once, then candidates are scored in parallel on every core: first a
+ * random search over the HSV thresholds, then a random search over the filter constants using the
+ * rectangles found by the best thresholds, then a coarse-to-fine search around the best result.
+ * The best parameters are written as JSON which Main reads with readPipelineConfig.
+ */
+public final class Tuner {
+  public static final String defaultOutputFile = "pipeline.json";
+  public static final double defaultMinutes = 10;
+  private static final String labelFile = "labels.json";
+
+  // how many candidates to try in each stage of the search, if there is time
+  private static final int hsvSamples = 1500;
+  private static final int hsvKeep = 8;
+  private static final int filterSamples = 1500;
+  private static final int refineRounds = 4;
+  private static final int refineSamples = 150;
+
+  // rectangles smaller than this are never considered, even while searching contourAreaMin
+  private static final int contourAreaFloor = 10;
+
+  // a target found further than this fraction of the image width from the label is a miss
+  private static final double tolerance = 0.1;
+
+  // the fraction of the time budget by which each stage of the search has to finish
+  private static final double hsvBudget = 0.4;
+  private static final double filterBudget = 0.8;
+
+  private static class Sample {
+    public String name;
+    public Mat hsv;
+    public double labelX; // NaN if there is no target in the image
+  }
+
+  private static class Result {
+    public Main.PipelineParameters params;
+    public double score;
+
+    public Result(Main.PipelineParameters p, double s) {
+      params = p;
+      score = s;
+    }
+  }
+
+  private final List<Sample> samples = new ArrayList<>();
+  private final Random random = new Random(2641);
+  // how many candidates the current stage scored, and how many it skipped for lack of time
+  private final AtomicInteger scored = new AtomicInteger();
+  private int skipped = 0;
+  private ExecutorService pool;
+
+  private Tuner() {
+  }
+
+  /**
+   * Tune the pipeline against the labeled images in a folder for at most the given number of
+   * minutes, and write the best parameters to a file. Returns false if nothing could be tuned or
+   * written.
+   */
+  public static boolean run(String imageFolderPath, String outputFile, double minutes) {
+    if (imageFolderPath == null) {
+      System.err.println("no image folder given, use -images <folder>");
+      return false;
+    }
+
+    Tuner tuner = new Tuner();
+    if (!tuner.loadSamples(Paths.get(imageFolderPath))) {
+      return false;
+    }
+
+    // we already keep every core busy with our own threads
+    Core.setNumThreads(1);
+    int threads = Runtime.getRuntime().availableProcessors();
+    tuner.pool = Executors.newFixedThreadPool(threads);
+    System.out.println("Tuning on " + tuner.samples.size() + " images with " + threads
+        + " threads for at most " + minutes + " minutes");
+
+    try {
+      Result best = tuner.search((long) (minutes * 60e9));
+      tuner.report(best);
+      return tuner.write(best.params, Paths.get(outputFile));
+    } finally {
+      tuner.pool.shutdown();
+      for (Sample s : tuner.samples) {
+        s.hsv.release();
+      }
+    }
+  }
+
+  /**
+   * Read the labels and load every labeled image, converting each to HSV once.
+   */
+  private boolean loadSamples(Path folder) {
+    Path labelPath = folder.resolve(labelFile);
+
+    // parse file
+    JsonElement top;
+    try (Reader reader = Files.newBufferedReader(labelPath)) {
+      top = new JsonParser().parse(reader);
+    } catch (IOException ex) {
+      System.err.println("could not open '" + labelPath + "': " + ex);
+      return false;
+    } catch (JsonParseException ex) {
+      System.err.println("label error in '" + labelPath + "': " + ex);
+      return false;
+    }
+
+    // top level must be an object
+    if (!top.isJsonObject()) {
+      System.err.println("label error in '" + labelPath + "': must be JSON object");
+      return false;
+    }
+    JsonObject labels = top.getAsJsonObject();
+
+    for (Map.Entry<String, JsonElement> label : labels.entrySet()) {
+      JsonElement value = label.getValue();
+      double labelX;
+      if (value.isJsonNull()) {
+        labelX = Double.NaN;
+      } else if (value.isJsonPrimitive() && value.getAsJsonPrimitive().isNumber()) {
+        labelX = value.getAsDouble();
+      } else {
+        System.err.println("label error in '" + labelPath + "': '" + label.getKey()
+            + "' must be an x pixel or null");
+        return false;
+      }
+
+      Mat image = Imgcodecs.imread(folder.resolve(label.getKey()).toString());
+      if (image.empty()) {
+        System.err.println("could not read image '" + label.getKey() + "', skipping");
+        continue;
+      }
+
+      Sample sample = new Sample();
+      sample.name = label.getKey();
+      sample.labelX = labelX;
+      sample.hsv = new Mat();
+      Imgproc.cvtColor(image, sample.hsv, Imgproc.COLOR_BGR2HSV);
+      image.release();
+      samples.add(sample);
+    }
+
+    if (samples.isEmpty()) {
+      System.err.println("no labeled images found in '" + folder + "'");
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Run every stage of the search, returning the best result found. A stage that runs out of its
+   * share of the budget stops early and the next stage carries on from the best result so far.
+   */
+  private Result search(long budget) {
+    long start = System.nanoTime();
+    long hsvDeadline = start + (long) (budget * hsvBudget);
+    long filterDeadline = start + (long) (budget * filterBudget);
+    long deadline = start + budget;
+
+    // stage 1: random search over the HSV thresholds, keeping the current filter constants
+    Main.PipelineParameters defaults = new Main.PipelineParameters();
+    List<Main.PipelineParameters> candidates = new ArrayList<>();
+    candidates.add(defaults);
+    for (int i = 0; i < hsvSamples; i++) {
+      Main.PipelineParameters p = defaults.copy();
+      randomizeThresholds(p);
+      candidates.add(p);
+    }
+    List<Result> hsvResults = evaluate(candidates, this::score, hsvDeadline);
+    print("HSV search", hsvResults.get(0), start);
+
+    // stage 2: random search over the filter constants. The rectangles only depend on the HSV
+    // thresholds, so they are found once for each of the best thresholds and reused.
+    List<Result> filterResults = new ArrayList<>();
+    for (Result hsvResult : hsvResults.subList(0, Math.min(hsvKeep, hsvResults.size()))) {
+      if (!filterResults.isEmpty() && pastDeadline(filterDeadline)) {
+        skipped += 1 + filterSamples;
+        continue;
+      }
+      List<List<Main.BetterRectangle>> rectangles =
+          findRectangles(hsvResult.params, contourAreaFloor);
+
+      candidates = new ArrayList<>();
+      candidates.add(hsvResult.params);
+      for (int i = 0; i < filterSamples; i++) {
+        Main.PipelineParameters p = hsvResult.params.copy();
+        randomizeFilters(p);
+        candidates.add(p);
+      }
+      filterResults.addAll(evaluate(candidates, p -> score(p, rectangles), filterDeadline));
+      release(rectangles);
+    }
+    filterResults.sort(Comparator.comparingDouble(r -> r.score));
+    Result best = filterResults.get(0);
+    print("Filter search", best, start);
+
+    // stage 3: coarse-to-fine search around the best result, halving the step size every round
+    double scale = 1;
+    for (int round = 0; round < refineRounds; round++) {
+      if (pastDeadline(deadline)) {
+        skipped += 1 + refineSamples;
+        continue;
+      }
+      candidates = new ArrayList<>();
+      candidates.add(best.params);
+      for (int i = 0; i < refineSamples; i++) {
+        candidates.add(perturb(best.params, scale));
+      }
+      best = evaluate(candidates, this::score, deadline).get(0);
+      scale /= 2;
+    }
+    print("Refining", best, start);
+
+    System.out.printf("Tuning took %.1f s%n", (System.nanoTime() - start) / 1e9);
+    return best;
+  }
+
+  /**
+   * Score every candidate in parallel. The first candidate is always scored, the rest are skipped
+   * once the deadline has passed. The results are sorted best first.
+   */
+  private List<Result> evaluate(List<Main.PipelineParameters> candidates,
+      ToDoubleFunction<Main.PipelineParameters> scorer, long deadline) {
+    List<Callable<Result>> tasks = new ArrayList<>();
+    for (int i = 0; i < candidates.size(); i++) {
+      Main.PipelineParameters p = candidates.get(i);
+      boolean required = i == 0;
+      tasks.add(() -> {
+        if (!required && pastDeadline(deadline)) {
+          return null;
+        }
+        scored.incrementAndGet();
+        return new Result(p, scorer.applyAsDouble(p));
+      });
+    }
+
+    List<Result> results = new ArrayList<>();
+    try {
+      for (Future<Result> future : pool.invokeAll(tasks)) {
+        Result result = future.get();
+        if (result == null) {
+          skipped++;
+        } else {
+          results.add(result);
+        }
+      }
+    } catch (InterruptedException | ExecutionException ex) {
+      throw new RuntimeException("tuning failed", ex);
+    }
+
+    // stable, so the earlier candidate wins a tie
+    results.sort(Comparator.comparingDouble(r -> r.score));
+    return results;
+  }
+
+  private static boolean pastDeadline(long deadline) {
+    return System.nanoTime() - deadline > 0;
+  }
+
+  /**
+   * Score parameters by running the whole pipeline on every image. Lower is better.
+   */
+  private double score(Main.PipelineParameters p) {
+    List<List<Main.BetterRectangle>> rectangles = findRectangles(p, p.contourAreaMin);
+    double score = score(p, rectangles);
+    release(rectangles);
+    return score;
+  }
+
+  /**
+   * Score parameters on rectangles that have already been found. Lower is better.
+   */
+  private double score(Main.PipelineParameters p, List<List<Main.BetterRectangle>> rectangles) {
+    double total = 0;
+    for (int i = 0; i < samples.size(); i++) {
+      total += penalty(samples.get(i), rectangles.get(i), p);
+    }
+    return total / samples.size();
+  }
+
+  /**
+   * How badly the pipeline did on one image, from 0 (exactly on the label) to 1 (a miss).
+   */
+  private static double penalty(Sample sample, List<Main.BetterRectangle> rectangles,
+      Main.PipelineParameters p) {
+    List<Main.BetterRectangle> filtered = Main.MyPipeline.filterRectangles(rectangles, p);
+    List<Main.Pair> targets = Main.MyPipeline.findPairs(filtered);
+    Main.Pair target = Main.MyPipeline.selectTarget(targets);
+
+    double penalty;
+    if (Double.isNaN(sample.labelX)) {
+      penalty = target == null ? 0 : 1;
+    } else if (target == null) {
+      penalty = 1;
+    } else {
+      double error = Math.abs(target.centerX() - sample.labelX) / sample.hsv.cols();
+      penalty = Math.min(1, error / tolerance);
+    }
+
+    // the found rectangles are shared between candidates, but the other half of a lone
+    // rectangle is inferred for each one
+    for (Main.Pair t : targets) {
+      for (Main.BetterRectangle half : new Main.BetterRectangle[] {t.left, t.right}) {
+        if (!filtered.contains(half)) {
+          half.matOfPoint.release();
+        }
+      }
+    }
+    return penalty;
+  }
+
+  /**
+   * Threshold every image and find the rectangles in it.
+   */
+  private List<List<Main.BetterRectangle>> findRectangles(Main.PipelineParameters p,
+      double areaMin) {
+    List<List<Main.BetterRectangle>> rectangles = new ArrayList<>();
+    Mat bin = new Mat();
+    for (Sample sample : samples) {
+      Main.MyPipeline.threshold(sample.hsv, bin, p);
+      List<MatOfPoint> contours = Main.MyPipeline.findContours(bin);
+      rectangles.add(Main.MyPipeline.findRectangles(contours, areaMin));
+      for (MatOfPoint contour : contours) {
+        contour.release();
+      }
+    }
+    bin.release();
+    return rectangles;
+  }
+
+  private static void release(List<List<Main.BetterRectangle>> rectangles) {
+    for (List<Main.BetterRectangle> image : rectangles) {
+      for (Main.BetterRectangle betRect : image) {
+        betRect.matOfPoint.release();
+      }
+    }
+  }
+
+  private void randomizeThresholds(Main.PipelineParameters p) {
+    // OpenCV stores hue as 0 - 180
+    p.hMin = random.nextInt(180);
+    p.hMax = p.hMin + random.nextInt(181 - p.hMin);
+    p.sMin = random.nextInt(256);
+    p.sMax = p.sMin + random.nextInt(256 - p.sMin);
+    p.vMin = random.nextInt(256);
+    p.vMax = p.vMin + random.nextInt(256 - p.vMin);
+  }
+
+  private void randomizeFilters(Main.PipelineParameters p) {
+    p.tPosLow = random.nextInt(91);
+    p.tPosUp = p.tPosLow + random.nextInt(91 - p.tPosLow);
+    p.tNegLow = -random.nextInt(91);
+    p.tNegUp = p.tNegLow + random.nextInt(1 - p.tNegLow);
+    p.contourAreaMin = contourAreaFloor + random.nextInt(500);
+    p.ratioMin = 1 + random.nextDouble() * 3;
+    p.ratioMax = p.ratioMin + random.nextDouble() * 4;
+  }
+
+  /**
+   * Make a copy of the parameters with every value nudged by a random amount.
+   */
+  private Main.PipelineParameters perturb(Main.PipelineParameters best, double scale) {
+    Main.PipelineParameters p = best.copy();
+    p.hMin = nudge(p.hMin, 10 * scale, 0, 180);
+    p.hMax = nudge(p.hMax, 10 * scale, p.hMin, 180);
+    p.sMin = nudge(p.sMin, 25 * scale, 0, 255);
+    p.sMax = nudge(p.sMax, 25 * scale, p.sMin, 255);
+    p.vMin = nudge(p.vMin, 25 * scale, 0, 255);
+    p.vMax = nudge(p.vMax, 25 * scale, p.vMin, 255);
+    p.tPosLow = nudge(p.tPosLow, 10 * scale, 0, 90);
+    p.tPosUp = nudge(p.tPosUp, 10 * scale, p.tPosLow, 90);
+    p.tNegLow = nudge(p.tNegLow, 10 * scale, -90, 0);
+    p.tNegUp = nudge(p.tNegUp, 10 * scale, p.tNegLow, 0);
+    p.contourAreaMin = nudge(p.contourAreaMin, 50 * scale, contourAreaFloor, 1000);
+    p.ratioMin = Math.max(0, p.ratioMin + random.nextGaussian() * 0.5 * scale);
+    p.ratioMax = Math.max(p.ratioMin, p.ratioMax + random.nextGaussian() * 0.5 * scale);
+    return p;
+  }
+
+  private int nudge(int value, double step, int min, int max) {
+    int nudged = (int) Math.round(value + random.nextGaussian() * step);
+    return Math.max(min, Math.min(max, nudged));
+  }
+
+  private void print(String stage, Result best, long start) {
+    System.out.printf("%s done after %.1f s, best score %.4f, scored %d candidates%s%n", stage,
+        (System.nanoTime() - start) / 1e9, best.score, scored.getAndSet(0),
+        skipped > 0 ? " and ran out of time for " + skipped : "");
+    skipped = 0;
+  }
+
+  /**
+   * Print how the best parameters did on each image.
+   */
+  private void report(Result best) {
+    List<List<Main.BetterRectangle>> rectangles =
+        findRectangles(best.params, best.params.contourAreaMin);
+    int misses = 0;
+    for (int i = 0; i < samples.size(); i++) {
+      double penalty = penalty(samples.get(i), rectangles.get(i), best.params);
+      if (penalty >= 1) {
+        misses++;
+        System.out.println("Missed " + samples.get(i).name);
+      }
+    }
+    System.out.println("Found " + (samples.size() - misses) + " of " + samples.size()
+        + " images correctly");
+    release(rectangles);
+  }
+
+  private boolean write(Main.PipelineParameters params, Path file) {
+    String json = new GsonBuilder().setPrettyPrinting().create().toJson(params.toJson());
+    System.out.println(json);
+
+    try (Writer writer = Files.newBufferedWriter(file)) {
+      writer.write(json);
+    } catch (IOException ex) {
+      System.err.println("could not write '" + file + "': " + ex);
+      return false;
+    }
+    System.out.println("Wrote pipeline parameters to '" + file + "'");
+    return true;
+  }
+}